@@ -1,20 +1,58 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.core.StopFilter;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.standard.StandardFilter;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
+import org.apache.lucene.store.CompoundFileDirectory;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.store.SimpleFSDirectory;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -22,6 +60,9 @@ import java.util.function.Supplier;
 public class Main {
     private static final Function<IndexWriterConfig, IndexWriterConfig> NO_COMPOUND_FILES = (c) -> c.setUseCompoundFile(false);
     private static final Function<IndexWriterConfig, IndexWriterConfig> USE_COMPOUND_FILES = (c) -> c.setUseCompoundFile(true);
+    // the price as fixed-point cents in a doc values column, so aggregations never touch the stored document
+    private static final String PRICE_IN_CENTS = "priceInCents";
+    private static final int BLOCK_SIZE = 1024;
 
     public static void main(String[] args) throws Exception {
         checkAsserts();
@@ -52,10 +93,106 @@ public class Main {
 //        speedOfAnalyzer(new StandardAnalyzer(Version.LUCENE_50), Main::randomWords);
 //        speedOfAnalyzer(new KeywordAnalyzer(), Main::randomWords);
 //        speedOfAnalyzerDifferentWays();
+//        profileAnalyzerStages();
 //        filterAndQuery();
+//        speedOfPriceAggregation();
+//        cachedQueryWithBuckets();
+//        shardedQueryWithBuckets();
+//        compareIndexSizeBreakdowns();
+//        indexOptionsCostMatrix();
+//        queryServiceUnderLoad();
+//        coldStartTimeToFirstQuery();
+//        tieredIndexWithHotAndColdData();
+//        timePartitionedSales();
         queryWithBuckets();
     }
 
+    private static void speedOfPriceAggregation() throws IOException, ParseException {
+        int toWrite = 2_000_000;
+        Directory directory = getMemoryDirectory();
+        IndexWriter indexWriter = getIndexWriter(directory);
+        Random random = new Random(42);
+        String[] countries = {"de", "en", "uk", "fr"};
+        Date date = parse("2000-01-02 03:04:00");
+        for (int i = 0; i < toWrite; i++) {
+            addSale(indexWriter, date, countries[random.nextInt(countries.length)], "shirt", random.nextInt(100_000) / 100.0);
+        }
+        indexWriter.forceMerge(1);
+        indexWriter.close();
+
+        IndexReader reader = DirectoryReader.open(directory);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        long[] allValues = new long[reader.maxDoc()];
+        NumericDocValues allPrices = getPrices(reader.leaves().get(0));
+        for (int doc = 0; doc < allValues.length; doc++) {
+            allValues[doc] = allPrices.get(doc);
+        }
+        List<Double> reductionSecs = new ArrayList<>();
+        List<Double> scanSecs = new ArrayList<>();
+        for (int round = 0; round < 10; round++) {
+            long start = System.nanoTime();
+            PriceStats reduced = new PriceStats();
+            long[] block = new long[BLOCK_SIZE];
+            for (int base = 0; base < allValues.length; base += BLOCK_SIZE) {
+                int length = Math.min(BLOCK_SIZE, allValues.length - base);
+                System.arraycopy(allValues, base, block, 0, length);
+                reduced.add(block, length);
+            }
+            reductionSecs.add((System.nanoTime() - start) / 1_000_000_000.0);
+            System.out.printf(Locale.ENGLISH, "  reduction of values already in memory: %s in %.3f sec = %.1f million values/sec%n", reduced, reductionSecs.get(round), reduced.count / reductionSecs.get(round) / 1_000_000.0);
+
+            start = System.nanoTime();
+            PriceStats stats = sumPricesOfAllDocuments(reader);
+            double secs = (System.nanoTime() - start) / 1_000_000_000.0;
+            scanSecs.add(secs);
+            System.out.printf(Locale.ENGLISH, "  scan of all documents: %s in %.3f sec = %.1f million values/sec%n", stats, secs, stats.count / secs / 1_000_000.0);
+
+            start = System.nanoTime();
+            FieldStatsCollector collector = new FieldStatsCollector();
+            searcher.search(new MatchAllDocsQuery(), collector);
+            secs = (System.nanoTime() - start) / 1_000_000_000.0;
+            System.out.printf(Locale.ENGLISH, "  collector over all documents: %s in %.3f sec = %.1f million values/sec%n", collector.getStats(), secs, collector.getStats().count / secs / 1_000_000.0);
+        }
+        double bestReduction = toWrite / getMin(reductionSecs) / 1_000_000.0;
+        double bestScan = toWrite / getMin(scanSecs) / 1_000_000.0;
+        System.out.printf(Locale.ENGLISH, "Best of 10: the reduction runs at %.1f million values/sec, the scan at %.1f million values/sec. "
+                + "The gap is reading the doc values: NumericDocValues.get is one call and packed ints decode per document, "
+                + "this Lucene version has no bulk read.%n", bestReduction, bestScan);
+        reader.close();
+    }
+
+    private static PriceStats sumPricesOfAllDocuments(IndexReader reader) throws IOException {
+        PriceStats result = new PriceStats();
+        long[] values = new long[BLOCK_SIZE];
+        for (AtomicReaderContext leaf : reader.leaves()) {
+            NumericDocValues prices = getPrices(leaf);
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            int maxDoc = leaf.reader().maxDoc();
+            for (int base = 0; base < maxDoc; base += BLOCK_SIZE) {
+                int length = 0;
+                int end = Math.min(base + BLOCK_SIZE, maxDoc);
+                if (liveDocs == null) {
+                    for (int doc = base; doc < end; doc++) {
+                        values[length++] = prices.get(doc);
+                    }
+                } else {
+                    for (int doc = base; doc < end; doc++) {
+                        if (liveDocs.get(doc)) {
+                            values[length++] = prices.get(doc);
+                        }
+                    }
+                }
+                result.add(values, length);
+            }
+        }
+        return result;
+    }
+
+    private static NumericDocValues getPrices(AtomicReaderContext context) throws IOException {
+        NumericDocValues prices = context.reader().getNumericDocValues(PRICE_IN_CENTS);
+        return prices == null ? NumericDocValues.EMPTY : prices;
+    }
+
     private static void queryWithBuckets() throws IOException, ParseException {
         Directory directory = getMemoryDirectory();
 
@@ -81,9 +218,366 @@ public class Main {
         BucketCollector collector = new BucketCollector(fields);
         searcher.search(query, timeFilter, collector);
         System.out.println("Results for " + Arrays.toString(fields));
-        for (Map.Entry<BucketCollector.BucketKey, BucketCollector.Bucket> entry : collector.buckets.entrySet()) {
-            BucketCollector.Bucket bucket = entry.getValue();
-            System.out.println("  for " + entry.getKey().values + " sold " + bucket.sales + " products for a total of " + bucket.sum);
+        for (Map.Entry<BucketCollector.BucketKey, BucketCollector.Bucket> entry : collector.getBuckets().entrySet()) {
+            PriceStats stats = entry.getValue().getStats();
+            System.out.println("  for " + entry.getKey().values + " sold " + stats.count + " products for a total of " + stats.getSum());
+        }
+    }
+
+    private static void cachedQueryWithBuckets() throws IOException, ParseException {
+        Directory directory = getMemoryDirectory();
+        IndexWriter indexWriter = getIndexWriter(directory);
+        addSale(indexWriter, parse("2000-01-02 03:04:00"), "de", "shirt", 123.45);
+        addSale(indexWriter, parse("2000-01-02 03:05:00"), "en", "shirt", 42.00);
+        indexWriter.commit();
+        addSale(indexWriter, parse("2000-01-02 03:06:00"), "de", "shirt", 9.99);
+
+        AggregationCache cache = new AggregationCache(1024 * 1024);
+        Query query = new MatchAllDocsQuery();
+        Filter timeFilter = new TermRangeFilter("date", asBytes("2000-01-02 03:03:01"), asBytes("2000-01-02 03:06:10"), true, true);
+        DirectoryReader reader = DirectoryReader.open(indexWriter, true);
+        runCachedBucketCollector(cache, new IndexSearcher(reader), query, timeFilter, "country");
+        runCachedBucketCollector(cache, new IndexSearcher(reader), query, timeFilter, "country");
+
+        // only the segment with the new sale has to be aggregated after the refresh
+        addSale(indexWriter, parse("2000-01-02 03:06:00"), "uk", "pants", 14.49);
+        DirectoryReader newReader = DirectoryReader.openIfChanged(reader, indexWriter, true);
+        assert newReader != null;
+        reader.close();
+        reader = newReader;
+        runCachedBucketCollector(cache, new IndexSearcher(reader), query, timeFilter, "country");
+
+        // a delete replaces the live docs of the committed segment, so only that segment is aggregated again
+        indexWriter.deleteDocuments(new Term("country", "en"));
+        newReader = DirectoryReader.openIfChanged(reader, indexWriter, true);
+        assert newReader != null;
+        reader.close();
+        reader = newReader;
+        runCachedBucketCollector(cache, new IndexSearcher(reader), query, timeFilter, "country");
+
+        // the segment with the deletion got a new reader, but keeps its live docs and with it the cached entry
+        addSale(indexWriter, parse("2000-01-02 03:06:00"), "de", "socks", 4.99);
+        newReader = DirectoryReader.openIfChanged(reader, indexWriter, true);
+        assert newReader != null;
+        reader.close();
+        reader = newReader;
+        runCachedBucketCollector(cache, new IndexSearcher(reader), query, timeFilter, "country");
+        System.out.println("Cache " + cache);
+        reader.close();
+        indexWriter.close();
+        System.out.println("Cache after closing the reader and writer " + cache);
+    }
+
+    private static Map<BucketCollector.BucketKey, PriceStats> runCachedBucketCollector(AggregationCache cache, IndexSearcher searcher, Query query, Filter filter, String... fields) throws IOException {
+        long hitsBefore = cache.hits;
+        long missesBefore = cache.misses;
+        Map<BucketCollector.BucketKey, PriceStats> result = aggregateBuckets(cache, searcher, query, filter, fields);
+        System.out.println("Results for " + Arrays.toString(fields) + " (" + (cache.hits - hitsBefore) + " cached segments, " + (cache.misses - missesBefore) + " aggregated segments)");
+        for (Map.Entry<BucketCollector.BucketKey, PriceStats> entry : result.entrySet()) {
+            PriceStats stats = entry.getValue();
+            System.out.println("  for " + entry.getKey().values + " sold " + stats.count + " products for a total of " + stats.getSum());
+        }
+        return result;
+    }
+
+    private static Map<BucketCollector.BucketKey, PriceStats> aggregateBuckets(AggregationCache cache, IndexSearcher searcher, Query query, Filter filter, String... fields) throws IOException {
+        Map<BucketCollector.BucketKey, PriceStats> result = new HashMap<>();
+        for (AtomicReaderContext leaf : searcher.getIndexReader().leaves()) {
+            Map<BucketCollector.BucketKey, PriceStats> partial = cache.get(leaf, query, filter, fields);
+            if (partial == null) {
+                BucketCollector collector = new BucketCollector(fields);
+                new IndexSearcher(leaf.reader()).search(query, filter, collector);
+                partial = new HashMap<>();
+                for (Map.Entry<BucketCollector.BucketKey, BucketCollector.Bucket> entry : collector.getBuckets().entrySet()) {
+                    partial.put(entry.getKey(), entry.getValue().getStats());
+                }
+                cache.put(leaf, query, filter, fields, partial);
+            }
+            mergeBuckets(result, partial);
+        }
+        return result;
+    }
+
+    private static void mergeBuckets(Map<BucketCollector.BucketKey, PriceStats> target, Map<BucketCollector.BucketKey, PriceStats> partial) {
+        for (Map.Entry<BucketCollector.BucketKey, PriceStats> entry : partial.entrySet()) {
+            PriceStats stats = target.get(entry.getKey());
+            if (stats == null) {
+                stats = new PriceStats();
+                target.put(entry.getKey(), stats);
+            }
+            stats.merge(entry.getValue());
+        }
+    }
+
+    private static void shardedQueryWithBuckets() throws IOException, ParseException {
+        int toWrite = 200_000;
+        int numberOfShards = 4;
+        List<Directory> directories = new ArrayList<>();
+        for (int i = 0; i < numberOfShards; i++) {
+            directories.add(getCleanDirectory("test-directory-shard-" + i));
+        }
+        Random random = new Random(42);
+        // de and en sell three times as much as each of the other countries
+        String[] countries = {"de", "de", "de", "en", "en", "en", "uk", "fr", "it", "es"};
+        String[] products = {"shirt", "pants", "socks"};
+        Date date = parse("2000-01-02 03:04:00");
+        List<Document> sales = new ArrayList<>();
+        for (int i = 0; i < toWrite; i++) {
+            sales.add(createSale(date, countries[random.nextInt(countries.length)], products[random.nextInt(products.length)], random.nextInt(10_000) / 100.0));
+        }
+
+        // hashing the countries into 4 shards leaves them uneven, the big ones get a shard each and the small ones share
+        Map<String, Integer> assignedShards = new HashMap<>();
+        assignedShards.put("de", 0);
+        assignedShards.put("en", 1);
+        assignedShards.put("uk", 2);
+        assignedShards.put("fr", 3);
+        assignedShards.put("it", 2);
+        assignedShards.put("es", 3);
+        ShardedIndex index = new ShardedIndex(directories, ShardedIndex.ROUTE_BY_COUNTRY, assignedShards);
+        long start = System.nanoTime();
+        index.addDocuments(sales);
+        index.commit();
+        SizeAndTime sizeAndTime = new SizeAndTime(index.getSize(), System.nanoTime() - start);
+        System.out.println("Writing " + toWrite + " sales to " + numberOfShards + " shards results in " + sizeAndTime.relativeToNumberOfDocuments(toWrite));
+
+        index.refresh();
+        System.out.println("Sales per shard " + index.getDocumentsPerShard());
+        Query query = new MatchAllDocsQuery();
+        Filter timeFilter = new TermRangeFilter("date", asBytes("2000-01-02 03:03:01"), asBytes("2000-01-02 03:06:10"), true, true);
+        start = System.nanoTime();
+        Map<BucketCollector.BucketKey, PriceStats> buckets = index.searchBuckets(query, timeFilter, "country", "product");
+        System.out.println("Results for [country, product] from " + numberOfShards + " shards in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        for (Map.Entry<BucketCollector.BucketKey, PriceStats> entry : buckets.entrySet()) {
+            System.out.println("  for " + entry.getKey().values + " " + entry.getValue());
+        }
+        System.out.println("All shards together " + index.searchStats(query, timeFilter));
+        index.close();
+    }
+
+    private static void queryServiceUnderLoad() throws IOException, ParseException, InterruptedException {
+        int toWrite = 100_000;
+        int concurrentClients = 1_000;
+        int requestsPerClient = 20;
+        Directory directory = getMemoryDirectory();
+        IndexWriter indexWriter = getIndexWriter(directory);
+        Random random = new Random(42);
+        String[] countries = {"de", "en", "uk", "fr"};
+        String[] products = {"shirt", "pants", "socks"};
+        long startDate = parse("2000-01-02 00:00:00").getTime();
+        for (int i = 0; i < toWrite; i++) {
+            Date date = new Date(startDate + random.nextInt(24 * 60 * 60) * 1000L);
+            addSale(indexWriter, date, countries[random.nextInt(countries.length)], products[random.nextInt(products.length)], random.nextInt(10_000) / 100.0);
+        }
+        indexWriter.close();
+
+        QueryService service = new QueryService(directory, 0, 4);
+        String base = "http://localhost:" + service.getPort();
+        String[] paths = {
+                "/search?field=country&term=de",
+                "/stats?from=2000-01-02+03:00:00&to=2000-01-02+04:00:00",
+                "/buckets?fields=country,product&from=2000-01-02+00:00:00&to=2000-01-02+12:00:00"
+        };
+        AtomicInteger ok = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService clients = newVirtualThreadExecutor();
+        long start = System.nanoTime();
+        for (int c = 0; c < concurrentClients; c++) {
+            int client = c;
+            clients.execute(() -> {
+                for (int r = 0; r < requestsPerClient; r++) {
+                    try {
+                        HttpURLConnection connection = (HttpURLConnection) new URL(base + paths[(client + r) % paths.length]).openConnection();
+                        int status = connection.getResponseCode();
+                        InputStream body = status == 200 ? connection.getInputStream() : connection.getErrorStream();
+                        while (body != null && body.read() != -1) {
+                            // drain so that the connection can be reused
+                        }
+                        if (status == 200) {
+                            ok.incrementAndGet();
+                        } else if (status == 503) {
+                            rejected.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(10, TimeUnit.MINUTES);
+        double secs = (System.nanoTime() - start) / 1_000_000_000.0;
+        int requests = ok.get() + rejected.get() + failed.get();
+        System.out.printf(Locale.ENGLISH, "%d clients sent %d requests in %.1f sec = %.0f requests/sec (%d ok, %d rejected, %d failed)%n",
+                concurrentClients, requests, secs, requests / secs, ok.get(), rejected.get(), failed.get());
+        System.out.println("Aggregation cache " + service.cache);
+        service.close();
+    }
+
+    private static void coldStartTimeToFirstQuery() throws IOException, ParseException {
+        int toWrite = 200_000;
+        int queries = 30;
+        String pathname = "test-directory-warmup";
+        Directory directory = getCleanDirectory(pathname);
+        IndexWriter indexWriter = getIndexWriter(directory, (c) -> c.setMergedSegmentWarmer(IndexWarmer.forSales()));
+        Random random = new Random(42);
+        String[] countries = {"de", "en", "uk", "fr"};
+        long startDate = parse("2000-01-02 00:00:00").getTime();
+        for (int i = 0; i < toWrite; i++) {
+            Date date = new Date(startDate + random.nextInt(24 * 60 * 60) * 1000L);
+            addSale(indexWriter, date, countries[random.nextInt(countries.length)], "shirt", random.nextInt(10_000) / 100.0);
+        }
+        indexWriter.close();
+        directory.close();
+
+        Map<String, DirectoryFactory> directoryTypes = new LinkedHashMap<>();
+        directoryTypes.put("simple fs", SimpleFSDirectory::new);
+        directoryTypes.put("nio fs", NIOFSDirectory::new);
+        directoryTypes.put("mmap", MMapDirectory::new);
+        Query query = new TermQuery(new Term("country", "de"));
+        Filter timeFilter = new TermRangeFilter("date", asBytes("2000-01-02 03:00:00"), asBytes("2000-01-02 15:00:00"), true, true);
+        // the files stay in the page cache between the runs, so this measures the cost inside the JVM;
+        // the first round is not printed, it only loads the classes and warms up the JIT for all runs alike
+        for (int round = 0; round < 2; round++) {
+            boolean print = round > 0;
+            if (print) {
+                System.out.println("Cold start of " + toWrite + " sales");
+            }
+            for (Map.Entry<String, DirectoryFactory> entry : directoryTypes.entrySet()) {
+                for (boolean warm : new boolean[]{false, true}) {
+                    measureColdStart(entry.getKey(), entry.getValue(), warm, pathname, query, timeFilter, queries, print);
+                }
+            }
+        }
+    }
+
+    private static void measureColdStart(String directoryType, DirectoryFactory directoryFactory, boolean warm, String pathname, Query query, Filter timeFilter, int queries, boolean print) throws IOException {
+        System.gc();
+        long start = System.nanoTime();
+        Directory coldDirectory = directoryFactory.open(new File(pathname));
+        DirectoryReader reader = DirectoryReader.open(coldDirectory);
+        long opened = System.nanoTime();
+        if (warm) {
+            IndexWarmer.forSales().warm(reader);
+        }
+        long warmed = System.nanoTime();
+        IndexSearcher searcher = new IndexSearcher(reader);
+        List<Long> latencies = new ArrayList<>();
+        List<Long> finished = new ArrayList<>();
+        for (int i = 0; i < queries; i++) {
+            long queryStart = System.nanoTime();
+            FieldStatsCollector collector = new FieldStatsCollector();
+            searcher.search(query, timeFilter, collector);
+            collector.getStats();
+            long queryEnd = System.nanoTime();
+            latencies.add(queryEnd - queryStart);
+            finished.add(queryEnd);
+        }
+        long best = Collections.min(latencies);
+        int steady = 0;
+        while (latencies.get(steady) > best * 1.2) {
+            steady++;
+        }
+        if (print) {
+            System.out.printf(Locale.ENGLISH, "  %-10s %-15s open %7.1f ms, warm %7.1f ms, first query %7.1f ms, steady state after %7.1f ms (%d queries, then %.2f ms/query)%n",
+                    directoryType, warm ? "with warming" : "without warming",
+                    (opened - start) / 1_000_000.0, (warmed - opened) / 1_000_000.0, latencies.get(0) / 1_000_000.0,
+                    (finished.get(steady) - start) / 1_000_000.0, steady + 1, best / 1_000_000.0);
+        }
+        reader.close();
+        coldDirectory.close();
+    }
+
+    private static void tieredIndexWithHotAndColdData() throws IOException, ParseException {
+        int toWrite = 200_000;
+        Directory directory = getCleanDirectory("test-directory-cold");
+        TieredIndex index = new TieredIndex(directory, 20_000, 5_000);
+        Random random = new Random(42);
+        String[] countries = {"de", "en", "uk", "fr"};
+        Date date = parse("2000-01-02 03:04:00");
+        long start = System.nanoTime();
+        for (int i = 1; i <= toWrite; i++) {
+            index.add(createSale(date, countries[random.nextInt(countries.length)], "shirt", random.nextInt(10_000) / 100.0));
+            if (i % 25_000 == 0) {
+                index.refresh();
+                IndexSearcher searcher = index.acquire();
+                long queryStart = System.nanoTime();
+                FieldStatsCollector collector = new FieldStatsCollector();
+                searcher.search(new TermQuery(new Term("country", "de")), collector);
+                long queryNanos = System.nanoTime() - queryStart;
+                index.release(searcher);
+                System.out.printf(Locale.ENGLISH, "  after %7d sales: %s, query took %.1f ms and found %s%n", i, index, queryNanos / 1_000_000.0, collector.getStats());
+            }
+        }
+        for (int i = 0; i < 1_000; i++) {
+            index.add(createSale(date, countries[random.nextInt(countries.length)], "shirt", random.nextInt(10_000) / 100.0));
+        }
+        index.refresh();
+        System.out.println("  after stopping to write: " + index);
+        try {
+            Thread.sleep(6_500);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("  after the age limit passed: " + index);
+        SizeAndTime sizeAndTime = getSizeAndTime(directory, start);
+        System.out.println("Writing " + (toWrite + 1_000) + " sales through the hot tier results in " + sizeAndTime.relativeToNumberOfDocuments(toWrite + 1_000));
+        index.close();
+    }
+
+    private static void timePartitionedSales() throws IOException, ParseException {
+        int days = 30;
+        int salesPerDay = 5_000;
+        File path = new File("test-directory-partitions");
+        removeDirectory(path);
+        PartitionedIndex index = new PartitionedIndex(path);
+        Random random = new Random(42);
+        String[] countries = {"de", "en", "uk", "fr"};
+        long firstDay = parse("2000-01-01 00:00:00").getTime();
+        long millisPerDay = 24 * 60 * 60 * 1000L;
+        for (int day = 0; day < days; day++) {
+            for (int i = 0; i < salesPerDay; i++) {
+                Date date = new Date(firstDay + day * millisPerDay + random.nextInt((int) millisPerDay));
+                index.add(date, createSale(date, countries[random.nextInt(countries.length)], "shirt", random.nextInt(10_000) / 100.0));
+            }
+        }
+        index.commit();
+
+        Query query = new TermQuery(new Term("country", "de"));
+        Date end = parse("2000-01-30 12:00:00");
+        // the first round opens the readers of the partitions, the second one reuses them
+        for (int round = 0; round < 2; round++) {
+            if (round == 1) {
+                // refreshes the reader of the last day on commit
+                Date date = parse("2000-01-30 11:00:00");
+                index.add(date, createSale(date, "de", "shirt", 12.34));
+                index.commit();
+            }
+            for (int lastDays : new int[]{1, 3, 7, days}) {
+                Date from = new Date(end.getTime() - lastDays * millisPerDay);
+                long start = System.nanoTime();
+                PriceStats stats = index.searchStats(query, from, end);
+                System.out.printf(Locale.ENGLISH, "  last %2d days: searched %2d of %2d partitions in %6.1f ms and found %s%n",
+                        lastDays, index.getPartitions(from, end).size(), index.getPartitions().size(), (System.nanoTime() - start) / 1_000_000.0, stats);
+            }
+        }
+        System.out.println("  inverted window: found " + index.searchStats(query, end, parse("2000-01-29 12:00:00")));
+
+        long start = System.nanoTime();
+        int dropped = index.dropPartitionsBefore(parse("2000-01-24 00:00:00"));
+        System.out.printf(Locale.ENGLISH, "  retention dropped %d partitions in %.1f ms, kept %s%n", dropped, (System.nanoTime() - start) / 1_000_000.0, index.getPartitions());
+        index.close();
+    }
+
+    // virtual threads need Java 21, older JVMs get a cached thread pool
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
         }
     }
 
@@ -102,7 +596,8 @@ public class Main {
         Filter timeFilter = new TermRangeFilter("date", asBytes("2000-01-02 03:04:01"), asBytes("2000-01-02 03:05:10"), true, true);
         FieldStatsCollector collector = new FieldStatsCollector();
         searcher.search(query, timeFilter, collector);
-        System.out.println("Sold " + collector.sales + " products for a total of " + collector.sum);
+        PriceStats stats = collector.getStats();
+        System.out.println("Sold " + stats.count + " products for a total of " + stats.getSum());
         reader.close();
 
     }
@@ -112,12 +607,17 @@ public class Main {
     }
 
     private static void addSale(IndexWriter indexWriter, Date date, String country, String what, double price) throws IOException {
+        indexWriter.addDocument(createSale(date, country, what, price));
+    }
+
+    private static Document createSale(Date date, String country, String what, double price) {
         Document document = new Document();
         document.add(new Field("date", DateTools.dateToString(date, DateTools.Resolution.SECOND), TextField.TYPE_STORED));
         document.add(new Field("country", country, TextField.TYPE_STORED));
         document.add(new Field("product", what, TextField.TYPE_STORED));
         document.add(new DoubleField("price", price, DoubleField.TYPE_STORED));
-        indexWriter.addDocument(document);
+        document.add(new NumericDocValuesField(PRICE_IN_CENTS, Math.round(price * 100)));
+        return document;
     }
 
     private static Date parse(String s) throws ParseException {
@@ -175,6 +675,178 @@ public class Main {
         }
     }
 
+    private static void profileAnalyzerStages() throws IOException {
+        int numberOfDocuments = 20_000;
+        List<String> words = createListOfWords(8, 1000, new Random(42));
+        Map<String, Function<Random, String>> corpora = new LinkedHashMap<>();
+        corpora.put("wordsFromString", Main::wordsFromString);
+        corpora.put("randomWords", Main::randomWords);
+        corpora.put("concatRandomWords", (random) -> concatRandomWords(words, random, 50));
+        Map<String, Analyzer> analyzers = new LinkedHashMap<>();
+        analyzers.put("standard tokenizer", standardAnalyzerStages(0));
+        analyzers.put("standard analyzer", new StandardAnalyzer(Version.LUCENE_50));
+        analyzers.put("keyword tokenizer", new KeywordAnalyzer());
+        analyzers.put("ascii whitespace", new AsciiWhitespaceAnalyzer());
+        // the filters of the StandardAnalyzer chain, in the order the analyzer applies them
+        Map<String, Function<TokenStream, TokenStream>> filters = new LinkedHashMap<>();
+        filters.put("standard filter", (input) -> new StandardFilter(Version.LUCENE_50, input));
+        filters.put("lower case filter", (input) -> new LowerCaseFilter(Version.LUCENE_50, input));
+        filters.put("stop filter", (input) -> new StopFilter(Version.LUCENE_50, input, StandardAnalyzer.STOP_WORDS_SET));
+
+        for (Map.Entry<String, Function<Random, String>> corpus : corpora.entrySet()) {
+            Random random = new Random(42);
+            List<String> values = new ArrayList<>();
+            for (int i = 0; i < numberOfDocuments; i++) {
+                values.add(corpus.getValue().apply(random));
+            }
+            System.out.println("Analyzing " + numberOfDocuments + " documents from " + corpus.getKey());
+            // warm up every chain first, otherwise the analyzers profiled first pay for the JIT
+            for (Analyzer analyzer : analyzers.values()) {
+                profileAnalyzer(analyzer, values);
+            }
+            for (Map.Entry<String, Analyzer> analyzer : analyzers.entrySet()) {
+                printProfile(analyzer.getKey(), profileAnalyzer(analyzer.getValue(), values), "");
+            }
+
+            // every filter reads the captured output of the stage before it, so no tokenizer or other filter is timed along
+            Analyzer tokenizerOnly = standardAnalyzerStages(0);
+            ReplayTokenStream replay = null;
+            for (String value : values) {
+                TokenStream stream = tokenizerOnly.tokenStream("fieldName", value);
+                if (replay == null) {
+                    replay = new ReplayTokenStream(stream);
+                }
+                replay.capture(stream);
+            }
+            for (Map.Entry<String, Function<TokenStream, TokenStream>> filter : filters.entrySet()) {
+                TokenStream filtered = filter.getValue().apply(replay);
+                profileReplay(replay, replay);
+                profileReplay(replay, filtered);
+                AnalysisProfile replayOnly = profileReplay(replay, replay);
+                AnalysisProfile profile = profileReplay(replay, filtered);
+                printProfile(filter.getKey() + " alone", profile,
+                        String.format(Locale.ENGLISH, "(%+7.1f ns/token over replaying)", profile.nanosPerToken() - replayOnly.nanosPerToken()));
+
+                ReplayTokenStream next = new ReplayTokenStream(filtered);
+                for (int document = 0; document < replay.numberOfDocuments(); document++) {
+                    replay.setDocument(document);
+                    next.capture(filtered);
+                }
+                replay = next;
+            }
+
+            for (Analyzer analyzer : new Analyzer[]{new StandardAnalyzer(Version.LUCENE_50), new AsciiWhitespaceAnalyzer()}) {
+                AnalysisProfile analysis = profileAnalyzer(analyzer, values);
+                double indexNanosPerToken = measureIndexing(analyzer, values) / (double) analysis.tokens;
+                System.out.printf(Locale.ENGLISH, "  indexing with %-24s %7.1f ns/token of which %7.1f ns/token are analysis and %7.1f ns/token indexing%n",
+                        analyzer.getClass().getSimpleName(), indexNanosPerToken, analysis.nanosPerToken(), indexNanosPerToken - analysis.nanosPerToken());
+            }
+        }
+    }
+
+    private static void printProfile(String name, AnalysisProfile profile, String suffix) {
+        System.out.printf(Locale.ENGLISH, "  %-26s %7.2f million tokens/sec %7.1f ns/token %7.1f bytes allocated/token %s%n",
+                name, profile.tokens / profile.secs / 1_000_000.0, profile.nanosPerToken(),
+                profile.allocatedBytes / (double) profile.tokens, suffix);
+    }
+
+    private static Analyzer standardAnalyzerStages(int filters) {
+        return new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                StandardTokenizer tokenizer = new StandardTokenizer(Version.LUCENE_50);
+                TokenStream stream = tokenizer;
+                if (filters >= 1) {
+                    stream = new StandardFilter(Version.LUCENE_50, stream);
+                }
+                if (filters >= 2) {
+                    stream = new LowerCaseFilter(Version.LUCENE_50, stream);
+                }
+                if (filters >= 3) {
+                    stream = new StopFilter(Version.LUCENE_50, stream, StandardAnalyzer.STOP_WORDS_SET);
+                }
+                return new TokenStreamComponents(tokenizer, stream);
+            }
+        };
+    }
+
+    // only the analyzer, no IndexWriter, the fastest of a few rounds
+    private static AnalysisProfile profileAnalyzer(Analyzer analyzer, List<String> values) throws IOException {
+        AnalysisProfile best = null;
+        for (int round = 0; round < 10; round++) {
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            long tokens = 0;
+            for (String value : values) {
+                TokenStream stream = analyzer.tokenStream("fieldName", value);
+                stream.reset();
+                while (stream.incrementToken()) {
+                    tokens++;
+                }
+                stream.end();
+                stream.close();
+            }
+            AnalysisProfile profile = new AnalysisProfile(tokens, System.nanoTime() - start, getAllocatedBytes() - allocatedBefore);
+            if (best == null || profile.secs < best.secs) {
+                best = profile;
+            }
+        }
+        return best;
+    }
+
+    // per token going into the stream, so a filter that drops tokens doesn't look more expensive
+    private static AnalysisProfile profileReplay(ReplayTokenStream replay, TokenStream stream) throws IOException {
+        AnalysisProfile best = null;
+        for (int round = 0; round < 10; round++) {
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            for (int document = 0; document < replay.numberOfDocuments(); document++) {
+                replay.setDocument(document);
+                stream.reset();
+                while (stream.incrementToken()) {
+                    // only consume
+                }
+                stream.end();
+                stream.close();
+            }
+            AnalysisProfile profile = new AnalysisProfile(replay.numberOfTokens(), System.nanoTime() - start, getAllocatedBytes() - allocatedBefore);
+            if (best == null || profile.secs < best.secs) {
+                best = profile;
+            }
+        }
+        return best;
+    }
+
+    // the fastest of a few runs after an untimed warm-up, in nanos
+    private static double measureIndexing(Analyzer analyzer, List<String> values) throws IOException {
+        FieldType fieldType = indexOnly();
+        List<Double> times = new ArrayList<>();
+        for (int round = 0; round < 6; round++) {
+            System.gc();
+            Directory directory = getMemoryDirectory();
+            IndexWriter indexWriter = getIndexWriter(directory, (c) -> new IndexWriterConfig(Version.LUCENE_50, analyzer));
+            long start = System.nanoTime();
+            for (String value : values) {
+                Document document = new Document();
+                document.add(new Field("fieldName", value, fieldType));
+                indexWriter.addDocument(document);
+            }
+            indexWriter.close();
+            if (round > 0) {
+                times.add((double) (System.nanoTime() - start));
+            }
+        }
+        return getMin(times);
+    }
+
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
     private static double getMin(List<Double> values) {
         Double[] array = values.toArray(new Double[values.size()]);
         Arrays.sort(array);
@@ -257,6 +929,138 @@ public class Main {
         System.out.println("Writing " + toWrite + " documents using " + fieldType + " and " + analyzer + " results in " + sizeAndTime.relativeToNumberOfDocuments(toWrite));
     }
 
+    private static void compareIndexSizeBreakdowns() throws IOException {
+        int toWrite = 20_000;
+        Map<String, FieldType> fieldTypes = new LinkedHashMap<>();
+        fieldTypes.put("store only", storeOnly());
+        fieldTypes.put("index only", indexOnly());
+        fieldTypes.put("store and index", storeAndIndex());
+        FieldType withTermVectors = storeAndIndex();
+        withTermVectors.setStoreTermVectors(true);
+        fieldTypes.put("store and index with term vectors", withTermVectors);
+        IndexSizeBreakdown baseline = null;
+        for (Map.Entry<String, FieldType> entry : fieldTypes.entrySet()) {
+            Directory directory = getMemoryDirectory();
+            IndexWriter indexWriter = getIndexWriter(directory, USE_COMPOUND_FILES);
+            Random random = new Random(42);
+            for (int i = 0; i < toWrite; i++) {
+                Document document = new Document();
+                document.add(new Field("fieldName", wordsFromString(random), entry.getValue()));
+                indexWriter.addDocument(document);
+            }
+            indexWriter.close();
+            IndexSizeBreakdown breakdown = IndexSizeBreakdown.of(directory);
+            breakdown.print(entry.getKey());
+            if (baseline == null) {
+                baseline = breakdown;
+            } else {
+                breakdown.printDifference(entry.getKey() + " compared to " + fieldTypes.keySet().iterator().next(), baseline);
+            }
+        }
+    }
+
+    private static void indexOptionsCostMatrix() throws IOException {
+        int toWrite = 20_000;
+        int rounds = 5;
+        Random random = new Random(42);
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < toWrite; i++) {
+            values.add(wordsFromString(random));
+        }
+        Map<String, FieldType> variants = new LinkedHashMap<>();
+        for (FieldInfo.IndexOptions indexOptions : FieldInfo.IndexOptions.values()) {
+            variants.put(indexOptions.toString(), indexedWith(indexOptions));
+        }
+        variants.put("term vectors", withTermVectors(false, false, false));
+        variants.put("term vectors with positions", withTermVectors(true, false, false));
+        variants.put("term vectors with offsets", withTermVectors(false, true, false));
+        variants.put("term vectors with positions and payloads", withTermVectors(true, false, true));
+        Query termQuery = new TermQuery(new Term("fieldName", "american"));
+        PhraseQuery phraseQuery = new PhraseQuery();
+        phraseQuery.add(new Term("fieldName", "american"));
+        phraseQuery.add(new Term("fieldName", "military"));
+
+        List<IndexOptionsCost> costs = new ArrayList<>();
+        for (Map.Entry<String, FieldType> variant : variants.entrySet()) {
+            for (boolean stored : new boolean[]{false, true}) {
+                for (boolean compound : new boolean[]{false, true}) {
+                    FieldType fieldType = new FieldType(variant.getValue());
+                    fieldType.setStored(stored);
+                    fieldType.freeze();
+                    costs.add(new IndexOptionsCost(variant.getKey(), fieldType, compound));
+                }
+            }
+        }
+
+        // every round starts at a different cell, so no cell is always measured while the JIT is still cold
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < costs.size(); i++) {
+                IndexOptionsCost cost = costs.get((i + round * costs.size() / rounds) % costs.size());
+                System.gc();
+                Directory directory = getMemoryDirectory();
+                IndexWriter indexWriter = getIndexWriter(directory, cost.compound ? USE_COMPOUND_FILES : NO_COMPOUND_FILES);
+                long start = System.nanoTime();
+                for (String value : values) {
+                    Document document = new Document();
+                    document.add(new Field("fieldName", value, cost.fieldType));
+                    indexWriter.addDocument(document);
+                }
+                indexWriter.close();
+                SizeAndTime sizeAndTime = getSizeAndTime(directory, start);
+                cost.indexMillis.add(sizeAndTime.nanos / 1_000_000.0);
+                cost.bytes = sizeAndTime.bytes;
+
+                IndexReader reader = DirectoryReader.open(directory);
+                IndexSearcher searcher = new IndexSearcher(reader);
+                cost.termMicros.add(measureQuery(searcher, termQuery));
+                if (cost.fieldType.indexOptions().compareTo(FieldInfo.IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0) {
+                    cost.phraseMicros.add(measureQuery(searcher, phraseQuery));
+                }
+                reader.close();
+            }
+        }
+
+        System.out.println("Cost of the index options for " + toWrite + " documents, best of " + rounds + " rounds");
+        for (IndexOptionsCost cost : costs) {
+            String phrase = cost.phraseMicros.isEmpty() ? "     n/a   "
+                    : String.format(Locale.ENGLISH, "%8.1f us", getMin(cost.phraseMicros));
+            System.out.printf(Locale.ENGLISH, "  %-42s %-10s %-12s %7.1f documents/ms %7.1f bytes/document, term query %8.1f us, phrase query %s%n",
+                    cost.name, cost.fieldType.stored() ? "stored" : "not stored", cost.compound ? "compound" : "separate",
+                    toWrite / getMin(cost.indexMillis), cost.bytes / (double) toWrite, getMin(cost.termMicros), phrase);
+        }
+    }
+
+    private static double measureQuery(IndexSearcher searcher, Query query) throws IOException {
+        // the first searches load the postings, only time the ones after that
+        for (int i = 0; i < 50; i++) {
+            searcher.search(query, new TotalHitCountCollector());
+        }
+        List<Double> times = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            long start = System.nanoTime();
+            searcher.search(query, new TotalHitCountCollector());
+            times.add((System.nanoTime() - start) / 1_000.0);
+        }
+        return getMin(times);
+    }
+
+    private static FieldType indexedWith(FieldInfo.IndexOptions indexOptions) {
+        FieldType fieldType = new FieldType();
+        fieldType.setIndexed(true);
+        fieldType.setTokenized(true);
+        fieldType.setIndexOptions(indexOptions);
+        return fieldType;
+    }
+
+    private static FieldType withTermVectors(boolean positions, boolean offsets, boolean payloads) {
+        FieldType fieldType = indexedWith(FieldInfo.IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+        fieldType.setStoreTermVectors(true);
+        fieldType.setStoreTermVectorPositions(positions);
+        fieldType.setStoreTermVectorOffsets(offsets);
+        fieldType.setStoreTermVectorPayloads(payloads);
+        return fieldType;
+    }
+
     private static void speedOfAnalyzingVsJustStoring(FieldType fieldType) throws IOException {
         int toWrite = 1_000_000;
         Directory directory = getMemoryDirectory();
@@ -271,6 +1075,7 @@ public class Main {
         indexWriter.close();
         SizeAndTime sizeAndTime = getSizeAndTime(directory, start);
         System.out.println("Writing " + toWrite + " documents using " + fieldType + " results in " + sizeAndTime);
+        IndexSizeBreakdown.of(directory).print(fieldType.toString());
     }
 
     private static FieldType storeAndIndex() {
@@ -504,6 +1309,7 @@ public class Main {
             }
         }
         reader.close();
+        IndexSizeBreakdown.of(directory).print("different field types");
 
     }
 
@@ -651,11 +1457,23 @@ public class Main {
         return new SimpleFSDirectory(path);
     }
 
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            System.err.println("Closing " + closeable + " failed: " + e);
+        }
+    }
+
     private static void removeDirectory(File path) {
         if (path.isDirectory()) {
             File[] files = path.listFiles();
             assert files != null;
             for (File file : files) {
+                if (file.isDirectory()) {
+                    removeDirectory(file);
+                    continue;
+                }
                 boolean deleted = file.delete();
                 assert deleted;
             }
@@ -718,35 +1536,436 @@ public class Main {
         }
     }
 
-    private static class SumScoreCollector extends Collector {
-        float score;
-        private Scorer scorer;
+    // bytes per kind of data by file extension, split over the fields in proportion to what each field contributes
+    private static class IndexSizeBreakdown {
+        private static final String STORED_FIELDS = "stored fields";
+        private static final String TERM_DICTIONARY = "term dictionary";
+        private static final String TERM_INDEX = "term index";
+        private static final String POSTINGS = "postings";
+        private static final String POSITIONS = "positions";
+        private static final String PAYLOADS_AND_OFFSETS = "payloads and offsets";
+        private static final String NORMS = "norms";
+        private static final String DOC_VALUES = "doc values";
+        private static final String TERM_VECTORS = "term vectors";
+        private static final String COMPOUND_FILE_OVERHEAD = "compound file overhead";
+        private static final String OTHER = "other";
+        private static final Map<String, String> CATEGORIES = new HashMap<>();
+
+        static {
+            CATEGORIES.put("si", "segment info");
+            CATEGORIES.put("fnm", "field infos");
+            CATEGORIES.put("fdt", STORED_FIELDS);
+            CATEGORIES.put("fdx", STORED_FIELDS);
+            CATEGORIES.put("tim", TERM_DICTIONARY);
+            CATEGORIES.put("tip", TERM_INDEX);
+            CATEGORIES.put("doc", POSTINGS);
+            CATEGORIES.put("pos", POSITIONS);
+            CATEGORIES.put("pay", PAYLOADS_AND_OFFSETS);
+            CATEGORIES.put("nvd", NORMS);
+            CATEGORIES.put("nvm", NORMS);
+            CATEGORIES.put("dvd", DOC_VALUES);
+            CATEGORIES.put("dvm", DOC_VALUES);
+            CATEGORIES.put("tvd", TERM_VECTORS);
+            CATEGORIES.put("tvx", TERM_VECTORS);
+            CATEGORIES.put("del", "deletions");
+            CATEGORIES.put("cfe", COMPOUND_FILE_OVERHEAD);
+            CATEGORIES.put("gen", "commit");
+        }
 
-        @Override
-        public void setScorer(Scorer scorer) throws IOException {
-            this.scorer = scorer;
+        private final Map<String, Long> bytesPerCategory = new TreeMap<>();
+        private final Map<String, Map<String, Long>> weightsPerCategory = new HashMap<>();
+        private int numberOfDocuments;
+
+        public static IndexSizeBreakdown of(Directory directory) throws IOException {
+            IndexSizeBreakdown result = new IndexSizeBreakdown();
+            result.addFiles(directory);
+            IndexReader reader = DirectoryReader.open(directory);
+            result.numberOfDocuments = reader.numDocs();
+            for (AtomicReaderContext leaf : reader.leaves()) {
+                result.addFieldWeights(leaf.reader());
+            }
+            reader.close();
+            return result;
         }
 
-        @Override
-        public void collect(int doc) throws IOException {
-            score += scorer.score();
+        private void addFiles(Directory directory) throws IOException {
+            for (String name : directory.listAll()) {
+                long length = directory.fileLength(name);
+                if (name.endsWith("." + IndexFileNames.COMPOUND_FILE_EXTENSION)) {
+                    CompoundFileDirectory compoundFile = new CompoundFileDirectory(directory, name, IOContext.READ, false);
+                    long inner = 0;
+                    for (String innerName : compoundFile.listAll()) {
+                        long innerLength = compoundFile.fileLength(innerName);
+                        add(getCategory(innerName), innerLength);
+                        inner += innerLength;
+                    }
+                    compoundFile.close();
+                    add(COMPOUND_FILE_OVERHEAD, length - inner);
+                } else {
+                    add(getCategory(name), length);
+                }
+            }
         }
 
-        @Override
-        public void setNextReader(AtomicReaderContext context) throws IOException {
+        private static String getCategory(String fileName) {
+            if (fileName.startsWith(IndexFileNames.SEGMENTS)) {
+                return "commit";
+            }
+            int dot = fileName.lastIndexOf('.');
+            String category = dot < 0 ? null : CATEGORIES.get(fileName.substring(dot + 1));
+            return category == null ? OTHER : category;
         }
 
-        @Override
-        public boolean acceptsDocsOutOfOrder() {
-            return true;
+        private void add(String category, long bytes) {
+            Long old = bytesPerCategory.get(category);
+            bytesPerCategory.put(category, (old == null ? 0 : old) + bytes);
         }
-    }
 
-    private static class Config {
-        private final int numberOfDistinctWords;
-        private final int wordSize;
-        private final int numberOfDocuments;
-        private final int numberOfWordsPerDocument;
+        private void addFieldWeights(AtomicReader reader) throws IOException {
+            for (FieldInfo fieldInfo : reader.getFieldInfos()) {
+                String field = fieldInfo.name;
+                if (fieldInfo.hasDocValues()) {
+                    addWeight(DOC_VALUES, field, reader.maxDoc());
+                }
+                Terms terms = reader.terms(field);
+                if (terms == null) {
+                    continue;
+                }
+                long termBytes = 0;
+                TermsEnum iterator = terms.iterator(null);
+                BytesRef term;
+                while ((term = iterator.next()) != null) {
+                    termBytes += term.length;
+                }
+                addWeight(TERM_DICTIONARY, field, termBytes);
+                addWeight(TERM_INDEX, field, termBytes);
+                addWeight(POSTINGS, field, terms.getSumDocFreq());
+                long positions = Math.max(terms.getSumTotalTermFreq(), terms.getSumDocFreq());
+                if (terms.hasPositions()) {
+                    addWeight(POSITIONS, field, positions);
+                }
+                if (terms.hasOffsets() || terms.hasPayloads()) {
+                    addWeight(PAYLOADS_AND_OFFSETS, field, positions);
+                }
+                if (fieldInfo.hasVectors()) {
+                    addWeight(TERM_VECTORS, field, positions);
+                }
+                if (fieldInfo.hasNorms()) {
+                    addWeight(NORMS, field, terms.getDocCount());
+                }
+            }
+            StoredFieldVisitor storedBytes = new StoredFieldVisitor() {
+                @Override
+                public Status needsField(FieldInfo fieldInfo) {
+                    return Status.YES;
+                }
+
+                @Override
+                public void binaryField(FieldInfo fieldInfo, byte[] value) {
+                    addWeight(STORED_FIELDS, fieldInfo.name, value.length);
+                }
+
+                @Override
+                public void stringField(FieldInfo fieldInfo, String value) {
+                    addWeight(STORED_FIELDS, fieldInfo.name, value.length());
+                }
+
+                @Override
+                public void intField(FieldInfo fieldInfo, int value) {
+                    addWeight(STORED_FIELDS, fieldInfo.name, 4);
+                }
+
+                @Override
+                public void longField(FieldInfo fieldInfo, long value) {
+                    addWeight(STORED_FIELDS, fieldInfo.name, 8);
+                }
+
+                @Override
+                public void floatField(FieldInfo fieldInfo, float value) {
+                    addWeight(STORED_FIELDS, fieldInfo.name, 4);
+                }
+
+                @Override
+                public void doubleField(FieldInfo fieldInfo, double value) {
+                    addWeight(STORED_FIELDS, fieldInfo.name, 8);
+                }
+            };
+            for (int doc = 0; doc < reader.maxDoc(); doc++) {
+                reader.document(doc, storedBytes);
+            }
+        }
+
+        private void addWeight(String category, String field, long weight) {
+            Map<String, Long> weights = weightsPerCategory.get(category);
+            if (weights == null) {
+                weights = new TreeMap<>();
+                weightsPerCategory.put(category, weights);
+            }
+            Long old = weights.get(field);
+            weights.put(field, (old == null ? 0 : old) + weight);
+        }
+
+        public long getBytes() {
+            long result = 0;
+            for (long bytes : bytesPerCategory.values()) {
+                result += bytes;
+            }
+            return result;
+        }
+
+        public long getBytes(String category) {
+            Long bytes = bytesPerCategory.get(category);
+            return bytes == null ? 0 : bytes;
+        }
+
+        public Map<String, Map<String, Long>> getBytesPerField() {
+            Map<String, Map<String, Long>> result = new TreeMap<>();
+            for (Map.Entry<String, Map<String, Long>> entry : weightsPerCategory.entrySet()) {
+                long totalWeight = 0;
+                for (long weight : entry.getValue().values()) {
+                    totalWeight += weight;
+                }
+                if (totalWeight == 0) {
+                    continue;
+                }
+                long bytes = getBytes(entry.getKey());
+                for (Map.Entry<String, Long> fieldWeight : entry.getValue().entrySet()) {
+                    Map<String, Long> perCategory = result.get(fieldWeight.getKey());
+                    if (perCategory == null) {
+                        perCategory = new TreeMap<>();
+                        result.put(fieldWeight.getKey(), perCategory);
+                    }
+                    perCategory.put(entry.getKey(), Math.round(bytes * (fieldWeight.getValue() / (double) totalWeight)));
+                }
+            }
+            return result;
+        }
+
+        private double perDocument(long bytes) {
+            return numberOfDocuments == 0 ? 0 : bytes / (double) numberOfDocuments;
+        }
+
+        public void print(String descr) {
+            long total = getBytes();
+            System.out.println("Index size breakdown (" + descr + "): " + total + " bytes for " + numberOfDocuments + " documents");
+            for (Map.Entry<String, Long> entry : bytesPerCategory.entrySet()) {
+                System.out.printf(Locale.ENGLISH, "  %-25s %12d bytes %10.2f bytes/document %5.1f%%%n", entry.getKey(), entry.getValue(), perDocument(entry.getValue()), 100.0 * entry.getValue() / total);
+            }
+            for (Map.Entry<String, Map<String, Long>> field : getBytesPerField().entrySet()) {
+                System.out.println("  field " + field.getKey() + " (estimated)");
+                for (Map.Entry<String, Long> entry : field.getValue().entrySet()) {
+                    System.out.printf(Locale.ENGLISH, "    %-23s %12d bytes %10.2f bytes/document%n", entry.getKey(), entry.getValue(), perDocument(entry.getValue()));
+                }
+            }
+        }
+
+        public void printDifference(String descr, IndexSizeBreakdown other) {
+            System.out.println("Index size difference (" + descr + "): " + (getBytes() - other.getBytes()) + " bytes");
+            Set<String> categories = new TreeSet<>(bytesPerCategory.keySet());
+            categories.addAll(other.bytesPerCategory.keySet());
+            for (String category : categories) {
+                long bytes = getBytes(category);
+                long otherBytes = other.getBytes(category);
+                if (bytes != otherBytes) {
+                    System.out.printf(Locale.ENGLISH, "  %-25s %12d -> %12d bytes (%+d) %10.2f -> %10.2f bytes/document%n", category, otherBytes, bytes, bytes - otherBytes, other.perDocument(otherBytes), perDocument(bytes));
+                }
+            }
+        }
+    }
+
+    private static class IndexOptionsCost {
+        final String name;
+        final FieldType fieldType;
+        final boolean compound;
+        final List<Double> indexMillis = new ArrayList<>();
+        final List<Double> termMicros = new ArrayList<>();
+        final List<Double> phraseMicros = new ArrayList<>();
+        long bytes;
+
+        private IndexOptionsCost(String name, FieldType fieldType, boolean compound) {
+            this.name = name;
+            this.fieldType = fieldType;
+            this.compound = compound;
+        }
+    }
+
+    private static class AnalysisProfile {
+        long tokens;
+        double secs;
+        long allocatedBytes;
+
+        private AnalysisProfile(long tokens, long nanos, long allocatedBytes) {
+            this.tokens = tokens;
+            this.secs = nanos / 1_000_000_000.0;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public double nanosPerToken() {
+            return secs * 1_000_000_000.0 / tokens;
+        }
+    }
+
+    // for machine generated ASCII values: splits at whitespace and lowercases A-Z, nothing else
+    private static class AsciiWhitespaceAnalyzer extends Analyzer {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName) {
+            return new TokenStreamComponents(new AsciiWhitespaceTokenizer());
+        }
+    }
+
+    // reuses the read and term buffers, so no objects are allocated per token
+    private static final class AsciiWhitespaceTokenizer extends Tokenizer {
+        private static final int IO_BUFFER_SIZE = 4096;
+        private final CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
+        private final OffsetAttribute offsetAttribute = addAttribute(OffsetAttribute.class);
+        private final char[] ioBuffer = new char[IO_BUFFER_SIZE];
+        private int bufferIndex;
+        private int dataLength;
+        private int offset;
+        private int finalOffset;
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            clearAttributes();
+            char[] term = termAttribute.buffer();
+            int length = 0;
+            int start = 0;
+            while (true) {
+                if (bufferIndex >= dataLength) {
+                    offset += dataLength;
+                    dataLength = Math.max(input.read(ioBuffer), 0);
+                    bufferIndex = 0;
+                    if (dataLength == 0) {
+                        finalOffset = correctOffset(offset);
+                        if (length == 0) {
+                            return false;
+                        }
+                        break;
+                    }
+                }
+                char c = ioBuffer[bufferIndex++];
+                if (c > ' ') {
+                    if (length == 0) {
+                        start = offset + bufferIndex - 1;
+                    }
+                    if (length == term.length) {
+                        term = termAttribute.resizeBuffer(length + 1);
+                    }
+                    term[length++] = c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+                } else if (length > 0) {
+                    break;
+                }
+            }
+            termAttribute.setLength(length);
+            offsetAttribute.setOffset(correctOffset(start), correctOffset(start + length));
+            return true;
+        }
+
+        @Override
+        public void end() throws IOException {
+            super.end();
+            offsetAttribute.setOffset(finalOffset, finalOffset);
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            bufferIndex = 0;
+            dataLength = 0;
+            offset = 0;
+            finalOffset = 0;
+        }
+    }
+
+    // replays captured tokens one document at a time, sharing the attributes of the stream it was created from
+    private static final class ReplayTokenStream extends TokenStream {
+        private final List<AttributeSource.State[]> documents = new ArrayList<>();
+        private final List<AttributeSource.State> endStates = new ArrayList<>();
+        private long numberOfTokens;
+        private AttributeSource.State[] tokens;
+        private AttributeSource.State endState;
+        private int index;
+
+        private ReplayTokenStream(AttributeSource attributes) {
+            super(attributes);
+        }
+
+        // the stream must share the attributes of this one
+        void capture(TokenStream stream) throws IOException {
+            List<AttributeSource.State> states = new ArrayList<>();
+            stream.reset();
+            while (stream.incrementToken()) {
+                states.add(stream.captureState());
+            }
+            stream.end();
+            endStates.add(stream.captureState());
+            stream.close();
+            documents.add(states.toArray(new AttributeSource.State[states.size()]));
+            numberOfTokens += states.size();
+        }
+
+        void setDocument(int document) {
+            tokens = documents.get(document);
+            endState = endStates.get(document);
+        }
+
+        int numberOfDocuments() {
+            return documents.size();
+        }
+
+        long numberOfTokens() {
+            return numberOfTokens;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (index == tokens.length) {
+                return false;
+            }
+            restoreState(tokens[index++]);
+            return true;
+        }
+
+        @Override
+        public void end() {
+            restoreState(endState);
+        }
+
+        @Override
+        public void reset() {
+            index = 0;
+        }
+    }
+
+    private static class SumScoreCollector extends Collector {
+        float score;
+        private Scorer scorer;
+
+        @Override
+        public void setScorer(Scorer scorer) throws IOException {
+            this.scorer = scorer;
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            score += scorer.score();
+        }
+
+        @Override
+        public void setNextReader(AtomicReaderContext context) throws IOException {
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+            return true;
+        }
+    }
+
+    private static class Config {
+        private final int numberOfDistinctWords;
+        private final int wordSize;
+        private final int numberOfDocuments;
+        private final int numberOfWordsPerDocument;
         private final Analyzer analyser;
 
         public Config(int numberOfDistinctWords, int wordSize, int numberOfDocuments, int numberOfWordsPerDocument, Analyzer analyser) {
@@ -770,10 +1989,970 @@ public class Main {
         }
     }
 
+    private static class PriceStats {
+        private long count;
+        private long sum;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+        private double sumOfSquares;
+
+        // reduces a block of prices in cents with long arithmetic only, so the JIT can vectorize the loop
+        public void add(long[] values, int length) {
+            long blockSum = 0;
+            long blockMin = Long.MAX_VALUE;
+            long blockMax = Long.MIN_VALUE;
+            long blockSquares = 0;
+            for (int i = 0; i < length; i++) {
+                long value = values[i];
+                blockSum += value;
+                blockMin = Math.min(blockMin, value);
+                blockMax = Math.max(blockMax, value);
+                blockSquares += value * value;
+            }
+            if (length == 0) {
+                return;
+            }
+            long largest = Math.max(Math.abs(blockMin), Math.abs(blockMax));
+            if (blockMin == Long.MIN_VALUE || largest > (long) Math.sqrt(Long.MAX_VALUE / length)) {
+                // the long squares may have overflowed, prices this large are rare enough to sum them again
+                double squares = 0;
+                for (int i = 0; i < length; i++) {
+                    squares += (double) values[i] * values[i];
+                }
+                sumOfSquares += squares;
+            } else {
+                sumOfSquares += blockSquares;
+            }
+            count += length;
+            sum += blockSum;
+            min = Math.min(min, blockMin);
+            max = Math.max(max, blockMax);
+        }
+
+        public void add(long value) {
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sumOfSquares += (double) value * value;
+        }
+
+        public void merge(PriceStats other) {
+            count += other.count;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sumOfSquares += other.sumOfSquares;
+        }
+
+        public double getSum() {
+            return sum / 100.0;
+        }
+
+        // NaN without prices, as is getMax
+        public double getMin() {
+            return count == 0 ? Double.NaN : min / 100.0;
+        }
+
+        public double getMax() {
+            return count == 0 ? Double.NaN : max / 100.0;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : getSum() / count;
+        }
+
+        public double getSumOfSquares() {
+            return sumOfSquares / 10_000.0;
+        }
+
+        @Override
+        public String toString() {
+            if (count == 0) {
+                return "{count=0}";
+            }
+            return String.format(Locale.ENGLISH, "{count=%d, sum=%.2f, min=%.2f, max=%.2f, mean=%.2f}", count, getSum(), getMin(), getMax(), getMean());
+        }
+    }
+
+    private interface DirectoryFactory {
+        Directory open(File path) throws IOException;
+    }
+
+    // runs the warming queries and walks terms, postings and doc values, also usable as merged segment warmer
+    private static class IndexWarmer extends IndexWriter.IndexReaderWarmer {
+        private final List<Query> queries;
+        private final String[] termFields;
+        private final String[] docValuesFields;
+        private final Set<Object> warmedCores = Collections.newSetFromMap(new WeakHashMap<>());
+        // keeps the JIT from dropping the reads
+        private volatile long touched;
+
+        public IndexWarmer(List<Query> queries, String[] termFields, String[] docValuesFields) {
+            this.queries = queries;
+            this.termFields = termFields;
+            this.docValuesFields = docValuesFields;
+        }
+
+        public static IndexWarmer forSales() {
+            List<Query> queries = new ArrayList<>();
+            queries.add(new MatchAllDocsQuery());
+            queries.add(new TermQuery(new Term("country", "de")));
+            return new IndexWarmer(queries, new String[]{"date", "country", "product"}, new String[]{PRICE_IN_CENTS});
+        }
+
+        public void warm(IndexReader reader) throws IOException {
+            for (AtomicReaderContext leaf : reader.leaves()) {
+                warm(leaf.reader());
+            }
+        }
+
+        // an NRT reader shares the core of a merged segment with the writer, so it was warmed there already
+        public void warmIfNew(AtomicReader reader) throws IOException {
+            synchronized (warmedCores) {
+                if (!warmedCores.add(reader.getCoreCacheKey())) {
+                    return;
+                }
+            }
+            warm(reader);
+        }
+
+        @Override
+        public void warm(AtomicReader reader) throws IOException {
+            synchronized (warmedCores) {
+                warmedCores.add(reader.getCoreCacheKey());
+            }
+            long result = 0;
+            for (String field : docValuesFields) {
+                NumericDocValues values = reader.getNumericDocValues(field);
+                if (values != null) {
+                    for (int doc = 0; doc < reader.maxDoc(); doc++) {
+                        result += values.get(doc);
+                    }
+                }
+            }
+            for (String field : termFields) {
+                Terms terms = reader.terms(field);
+                if (terms == null) {
+                    continue;
+                }
+                TermsEnum iterator = terms.iterator(null);
+                DocsEnum docs = null;
+                while (iterator.next() != null) {
+                    docs = iterator.docs(reader.getLiveDocs(), docs, DocsEnum.FLAG_NONE);
+                    while (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                        result++;
+                    }
+                }
+            }
+            IndexSearcher searcher = new IndexSearcher(reader);
+            for (Query query : queries) {
+                TotalHitCountCollector collector = new TotalHitCountCollector();
+                searcher.search(query, collector);
+                result += collector.getTotalHits();
+            }
+            touched += result;
+        }
+    }
+
+    // segments keep their core across refreshes, so only new cores are warmed; share the warmer with the writer
+    // to skip the merged segments it warmed already
+    private static class WarmingSearcherFactory extends SearcherFactory {
+        private final IndexWarmer warmer;
+
+        public WarmingSearcherFactory(IndexWarmer warmer) {
+            this.warmer = warmer;
+        }
+
+        @Override
+        public IndexSearcher newSearcher(IndexReader reader) throws IOException {
+            for (AtomicReaderContext leaf : reader.leaves()) {
+                warmer.warmIfNew(leaf.reader());
+            }
+            return new IndexSearcher(reader);
+        }
+    }
+
+    // one index per day, retention deletes whole directories and a search only uses the overlapping days
+    private static class PartitionedIndex implements Closeable {
+        private static final String PREFIX = "partition-";
+
+        private final File path;
+        private final TreeMap<String, File> partitions = new TreeMap<>();
+        private final Map<String, Directory> directories = new HashMap<>();
+        private final Map<String, IndexWriter> writers = new HashMap<>();
+        // opened on the first search of a partition and refreshed on commit, searches only incRef them
+        private final Map<String, DirectoryReader> readers = new HashMap<>();
+
+        public PartitionedIndex(File path) {
+            this.path = path;
+            boolean created = path.mkdirs() || path.isDirectory();
+            assert created;
+            File[] files = path.listFiles();
+            assert files != null;
+            for (File file : files) {
+                if (file.isDirectory() && file.getName().startsWith(PREFIX)) {
+                    partitions.put(file.getName().substring(PREFIX.length()), file);
+                }
+            }
+        }
+
+        private static String getPartition(Date date) {
+            return DateTools.dateToString(date, DateTools.Resolution.DAY);
+        }
+
+        public synchronized void add(Date date, Document document) throws IOException {
+            getWriter(getPartition(date)).addDocument(document);
+        }
+
+        private IndexWriter getWriter(String partition) throws IOException {
+            IndexWriter writer = writers.get(partition);
+            if (writer == null) {
+                partitions.put(partition, new File(path, PREFIX + partition));
+                writer = getIndexWriter(getPartitionDirectory(partition));
+                writers.put(partition, writer);
+            }
+            return writer;
+        }
+
+        private Directory getPartitionDirectory(String partition) throws IOException {
+            Directory directory = directories.get(partition);
+            if (directory == null) {
+                directory = getDirectory(partitions.get(partition).getPath());
+                directories.put(partition, directory);
+            }
+            return directory;
+        }
+
+        private DirectoryReader getReader(String partition) throws IOException {
+            DirectoryReader reader = readers.get(partition);
+            if (reader == null) {
+                try {
+                    reader = DirectoryReader.open(getPartitionDirectory(partition));
+                } catch (IndexNotFoundException e) {
+                    // nothing committed yet
+                    return null;
+                }
+                readers.put(partition, reader);
+            }
+            return reader;
+        }
+
+        public synchronized void commit() throws IOException {
+            for (Map.Entry<String, IndexWriter> entry : writers.entrySet()) {
+                entry.getValue().commit();
+                DirectoryReader reader = readers.get(entry.getKey());
+                if (reader != null) {
+                    DirectoryReader newReader = DirectoryReader.openIfChanged(reader);
+                    if (newReader != null) {
+                        readers.put(entry.getKey(), newReader);
+                        reader.decRef();
+                    }
+                }
+            }
+        }
+
+        public synchronized Set<String> getPartitions() {
+            return new TreeSet<>(partitions.keySet());
+        }
+
+        // only costs deleting the files, returns the number of dropped days
+        public synchronized int dropPartitionsBefore(Date date) throws IOException {
+            int result = 0;
+            Iterator<Map.Entry<String, File>> iterator = partitions.headMap(getPartition(date), false).entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, File> entry = iterator.next();
+                closePartition(entry.getKey());
+                removeDirectory(entry.getValue());
+                iterator.remove();
+                result++;
+            }
+            return result;
+        }
+
+        // both ends inclusive, none if from is after to
+        public synchronized SortedMap<String, File> getPartitions(Date from, Date to) {
+            if (from.after(to)) {
+                return new TreeMap<>();
+            }
+            return new TreeMap<>(partitions.subMap(getPartition(from), true, getPartition(to), true));
+        }
+
+        public PriceStats searchStats(Query query, Date from, Date to) throws IOException {
+            return search(from, to, (searcher, filter) -> {
+                FieldStatsCollector collector = new FieldStatsCollector();
+                searcher.search(query, filter, collector);
+                return collector.getStats();
+            });
+        }
+
+        public Map<BucketCollector.BucketKey, PriceStats> searchBuckets(Query query, Date from, Date to, String... fields) throws IOException {
+            return search(from, to, (searcher, filter) -> {
+                BucketCollector collector = new BucketCollector(fields);
+                searcher.search(query, filter, collector);
+                Map<BucketCollector.BucketKey, PriceStats> result = new HashMap<>();
+                for (Map.Entry<BucketCollector.BucketKey, BucketCollector.Bucket> entry : collector.getBuckets().entrySet()) {
+                    result.put(entry.getKey(), entry.getValue().getStats());
+                }
+                return result;
+            });
+        }
+
+        // only the incRef of the overlapping partitions' readers happens under the lock, the search runs outside
+        private <T> T search(Date from, Date to, PartitionSearch<T> search) throws IOException {
+            List<IndexReader> acquired = new ArrayList<>();
+            try {
+                synchronized (this) {
+                    for (String partition : getPartitions(from, to).keySet()) {
+                        DirectoryReader reader = getReader(partition);
+                        if (reader != null) {
+                            reader.incRef();
+                            acquired.add(reader);
+                        }
+                    }
+                }
+                BytesRef lower = new BytesRef(DateTools.dateToString(from, DateTools.Resolution.SECOND));
+                BytesRef upper = new BytesRef(DateTools.dateToString(to, DateTools.Resolution.SECOND));
+                IndexReader reader = new MultiReader(acquired.toArray(new IndexReader[acquired.size()]), false);
+                try {
+                    return search.search(new IndexSearcher(reader), new TermRangeFilter("date", lower, upper, true, true));
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                for (IndexReader reader : acquired) {
+                    reader.decRef();
+                }
+            }
+        }
+
+        private void closePartition(String partition) throws IOException {
+            IndexWriter writer = writers.remove(partition);
+            if (writer != null) {
+                writer.close();
+            }
+            DirectoryReader reader = readers.remove(partition);
+            Directory directory = directories.remove(partition);
+            if (reader != null) {
+                // searches still running keep the reader open, the directory is closed after them
+                if (directory != null) {
+                    reader.addReaderClosedListener((closed) -> closeQuietly(directory));
+                }
+                reader.decRef();
+            } else if (directory != null) {
+                directory.close();
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            for (String partition : new ArrayList<>(directories.keySet())) {
+                closePartition(partition);
+            }
+        }
+
+        private interface PartitionSearch<T> {
+            T search(IndexSearcher searcher, Filter filter) throws IOException;
+        }
+    }
+
+    // new documents go to an in-memory hot tier, which is added to the on-disk cold tier when it gets too big or too old
+    private static class TieredIndex implements Closeable {
+        private final Directory coldDirectory;
+        private final IndexWriter coldWriter;
+        private final int maxHotDocuments;
+        private final long maxHotAgeMillis;
+        private Directory hotDirectory;
+        private IndexWriter hotWriter;
+        private DirectoryReader hotReader;
+        private DirectoryReader coldReader;
+        private int hotDocuments;
+        private long oldestHotDocument;
+        private int flushes;
+        private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "hot-tier-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        public TieredIndex(Directory coldDirectory, int maxHotDocuments, long maxHotAgeMillis) throws IOException {
+            this.coldDirectory = coldDirectory;
+            this.coldWriter = getIndexWriter(coldDirectory);
+            this.maxHotDocuments = maxHotDocuments;
+            this.maxHotAgeMillis = maxHotAgeMillis;
+            startHotTier();
+            coldReader = DirectoryReader.open(coldWriter, true);
+            long checkEveryMillis = Math.max(maxHotAgeMillis / 4, 1);
+            flusher.scheduleWithFixedDelay(() -> {
+                // an exception escaping the task would cancel all later runs and with them the age limit
+                try {
+                    maybeFlush();
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Flushing the hot tier failed: " + e);
+                }
+            }, checkEveryMillis, checkEveryMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void startHotTier() throws IOException {
+            hotDirectory = getMemoryDirectory();
+            hotWriter = getIndexWriter(hotDirectory);
+            hotReader = DirectoryReader.open(hotWriter, true);
+            hotDocuments = 0;
+        }
+
+        public synchronized void add(Document document) throws IOException {
+            if (hotDocuments == 0) {
+                oldestHotDocument = System.currentTimeMillis();
+            }
+            hotWriter.addDocument(document);
+            hotDocuments++;
+            maybeFlush();
+        }
+
+        public synchronized void maybeFlush() throws IOException {
+            if (hotDocuments >= maxHotDocuments || (hotDocuments > 0 && System.currentTimeMillis() - oldestHotDocument >= maxHotAgeMillis)) {
+                flush();
+            }
+        }
+
+        // both readers are replaced together, so no searcher sees the moved documents twice or not at all
+        public synchronized void flush() throws IOException {
+            if (hotDocuments == 0) {
+                return;
+            }
+            hotWriter.close();
+            coldWriter.addIndexes(hotDirectory);
+            coldWriter.commit();
+            flushes++;
+            DirectoryReader oldHotReader = hotReader;
+            Directory oldHotDirectory = hotDirectory;
+            startHotTier();
+            // searchers may still use the old hot tier, its memory is freed once the last of them is released
+            oldHotReader.addReaderClosedListener((reader) -> closeQuietly(oldHotDirectory));
+            oldHotReader.close();
+            refreshCold();
+        }
+
+        public synchronized void refresh() throws IOException {
+            maybeFlush();
+            DirectoryReader newHotReader = DirectoryReader.openIfChanged(hotReader, hotWriter, true);
+            if (newHotReader != null) {
+                hotReader.close();
+                hotReader = newHotReader;
+            }
+            refreshCold();
+        }
+
+        private void refreshCold() throws IOException {
+            DirectoryReader newColdReader = DirectoryReader.openIfChanged(coldReader, coldWriter, true);
+            if (newColdReader != null) {
+                coldReader.close();
+                coldReader = newColdReader;
+            }
+        }
+
+        // holds a reference on both tiers, hand it back with release
+        public synchronized IndexSearcher acquire() {
+            return new IndexSearcher(new MultiReader(new IndexReader[]{hotReader, coldReader}, false));
+        }
+
+        public void release(IndexSearcher searcher) throws IOException {
+            searcher.getIndexReader().close();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "{hot=" + hotReader.numDocs() + ", cold=" + coldReader.numDocs() + ", flushes=" + flushes + '}';
+        }
+
+        @Override
+        public void close() throws IOException {
+            flusher.shutdown();
+            synchronized (this) {
+                flush();
+                hotReader.close();
+                coldReader.close();
+                hotWriter.close();
+                hotDirectory.close();
+                coldWriter.close();
+                coldDirectory.close();
+            }
+        }
+    }
+
+    // a limited number of aggregations run at the same time, requests that can't get a slot in time get a 503
+    private static class QueryService implements Closeable {
+        private static final int BACKLOG = 4096;
+        private static final long ADMISSION_TIMEOUT_MILLIS = 1_000;
+
+        private final SearcherManager searcherManager;
+        private final AggregationCache cache = new AggregationCache(16 * 1024 * 1024);
+        private final Semaphore aggregations;
+        private final ExecutorService executor;
+        private final HttpServer server;
+
+        public QueryService(Directory directory, int port, int maxConcurrentAggregations) throws IOException {
+            searcherManager = new SearcherManager(directory, new WarmingSearcherFactory(IndexWarmer.forSales()));
+            aggregations = new Semaphore(maxConcurrentAggregations);
+            executor = newVirtualThreadExecutor();
+            server = HttpServer.create(new InetSocketAddress("localhost", port), BACKLOG);
+            server.createContext("/search", (exchange) -> handle(exchange, this::search, false));
+            server.createContext("/stats", (exchange) -> handle(exchange, this::stats, true));
+            server.createContext("/buckets", (exchange) -> handle(exchange, this::buckets, true));
+            server.setExecutor(executor);
+            server.start();
+        }
+
+        public int getPort() {
+            return server.getAddress().getPort();
+        }
+
+        // running requests keep their searcher
+        public void refresh() throws IOException {
+            searcherManager.maybeRefresh();
+        }
+
+        private String search(IndexSearcher searcher, Map<String, String> parameters) throws IOException {
+            String field = getRequired(parameters, "field");
+            String term = getRequired(parameters, "term");
+            int n = parameters.containsKey("n") ? Integer.parseInt(parameters.get("n")) : 10;
+            TopDocs topDocs = searcher.search(new TermQuery(new Term(field, term)), n);
+            StringBuilder sb = new StringBuilder();
+            sb.append("hits=").append(topDocs.totalHits).append('\n');
+            for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                StoredDocument document = searcher.doc(scoreDoc.doc);
+                sb.append(document.get("date")).append(' ').append(document.get("country")).append(' ')
+                        .append(document.get("product")).append(' ').append(document.get("price")).append('\n');
+            }
+            return sb.toString();
+        }
+
+        private String stats(IndexSearcher searcher, Map<String, String> parameters) throws IOException, ParseException {
+            FieldStatsCollector collector = new FieldStatsCollector();
+            searcher.search(new MatchAllDocsQuery(), getTimeFilter(parameters), collector);
+            return collector.getStats() + "\n";
+        }
+
+        private String buckets(IndexSearcher searcher, Map<String, String> parameters) throws IOException, ParseException {
+            String fields = parameters.get("fields");
+            String[] grouping = fields == null || fields.isEmpty() ? new String[0] : fields.split(",");
+            Map<BucketCollector.BucketKey, PriceStats> buckets = aggregateBuckets(cache, searcher, new MatchAllDocsQuery(), getTimeFilter(parameters), grouping);
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<BucketCollector.BucketKey, PriceStats> entry : buckets.entrySet()) {
+                sb.append(entry.getKey().values).append(' ').append(entry.getValue()).append('\n');
+            }
+            return sb.toString();
+        }
+
+        private static Filter getTimeFilter(Map<String, String> parameters) throws ParseException {
+            String from = parameters.get("from");
+            String to = parameters.get("to");
+            if (from == null && to == null) {
+                return null;
+            }
+            return new TermRangeFilter("date", from == null ? null : asBytes(from), to == null ? null : asBytes(to), true, true);
+        }
+
+        private static String getRequired(Map<String, String> parameters, String name) {
+            String value = parameters.get(name);
+            if (value == null) {
+                throw new IllegalArgumentException("missing parameter " + name);
+            }
+            return value;
+        }
+
+        private void handle(HttpExchange exchange, RequestHandler handler, boolean aggregation) throws IOException {
+            int status = 200;
+            String response;
+            boolean admitted = false;
+            try {
+                if (aggregation) {
+                    admitted = aggregations.tryAcquire(ADMISSION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (!admitted) {
+                        throw new RejectedExecutionException("too many concurrent aggregations");
+                    }
+                }
+                IndexSearcher searcher = searcherManager.acquire();
+                try {
+                    response = handler.handle(searcher, getParameters(exchange.getRequestURI()));
+                } finally {
+                    searcherManager.release(searcher);
+                }
+            } catch (RejectedExecutionException e) {
+                status = 503;
+                response = e.getMessage() + "\n";
+            } catch (IllegalArgumentException | ParseException e) {
+                status = 400;
+                response = e.getMessage() + "\n";
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                status = 503;
+                response = "interrupted\n";
+            } catch (IOException | RuntimeException e) {
+                status = 500;
+                response = e + "\n";
+            } finally {
+                if (admitted) {
+                    aggregations.release();
+                }
+            }
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream body = exchange.getResponseBody();
+            body.write(bytes);
+            body.close();
+        }
+
+        private static Map<String, String> getParameters(URI uri) throws UnsupportedEncodingException {
+            Map<String, String> result = new HashMap<>();
+            String query = uri.getRawQuery();
+            if (query == null) {
+                return result;
+            }
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals > 0) {
+                    result.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.stop(0);
+            executor.shutdown();
+            searcherManager.close();
+        }
+
+        private interface RequestHandler {
+            String handle(IndexSearcher searcher, Map<String, String> parameters) throws IOException, ParseException;
+        }
+    }
+
+    // routes documents to shards with their own writer, queries run on all shards in parallel and merge the results
+    private static class ShardedIndex implements Closeable {
+        private static final Function<Document, String> ROUTE_BY_COUNTRY = (d) -> d.get("country");
+
+        private final List<Directory> directories;
+        private final Function<Document, String> routingKey;
+        // keys with an assigned shard always go there, all others are hashed
+        private final Map<String, Integer> assignedShards;
+        private final List<IndexWriter> writers = new ArrayList<>();
+        private final List<DirectoryReader> readers = new ArrayList<>();
+        private final ExecutorService executor;
+
+        public ShardedIndex(List<Directory> directories, Function<Document, String> routingKey, Map<String, Integer> assignedShards) throws IOException {
+            this.directories = directories;
+            this.routingKey = routingKey;
+            this.assignedShards = assignedShards;
+            for (Directory directory : directories) {
+                writers.add(getIndexWriter(directory));
+            }
+            executor = Executors.newFixedThreadPool(directories.size());
+        }
+
+        public int getShard(Document document) {
+            String key = routingKey.apply(document);
+            Integer shard = assignedShards.get(key);
+            if (shard != null) {
+                return shard;
+            }
+            return Math.floorMod(key == null ? 0 : key.hashCode(), writers.size());
+        }
+
+        public void addDocuments(List<Document> documents) throws IOException {
+            List<List<Document>> perShard = new ArrayList<>();
+            for (int i = 0; i < writers.size(); i++) {
+                perShard.add(new ArrayList<>());
+            }
+            for (Document document : documents) {
+                perShard.get(getShard(document)).add(document);
+            }
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < writers.size(); i++) {
+                IndexWriter writer = writers.get(i);
+                List<Document> shardDocuments = perShard.get(i);
+                tasks.add(() -> {
+                    for (Document document : shardDocuments) {
+                        writer.addDocument(document);
+                    }
+                    return null;
+                });
+            }
+            invokeAll(tasks);
+        }
+
+        public void commit() throws IOException {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (IndexWriter writer : writers) {
+                tasks.add(() -> {
+                    writer.commit();
+                    return null;
+                });
+            }
+            invokeAll(tasks);
+        }
+
+        // near real time, no commit needed
+        public void refresh() throws IOException {
+            for (int i = 0; i < writers.size(); i++) {
+                if (readers.size() <= i) {
+                    readers.add(DirectoryReader.open(writers.get(i), true));
+                } else {
+                    DirectoryReader newReader = DirectoryReader.openIfChanged(readers.get(i), writers.get(i), true);
+                    if (newReader != null) {
+                        readers.get(i).close();
+                        readers.set(i, newReader);
+                    }
+                }
+            }
+        }
+
+        public Map<BucketCollector.BucketKey, PriceStats> searchBuckets(Query query, Filter filter, String... fields) throws IOException {
+            List<Callable<Map<BucketCollector.BucketKey, PriceStats>>> tasks = new ArrayList<>();
+            for (DirectoryReader reader : readers) {
+                tasks.add(() -> {
+                    BucketCollector collector = new BucketCollector(fields);
+                    new IndexSearcher(reader).search(query, filter, collector);
+                    Map<BucketCollector.BucketKey, PriceStats> partial = new HashMap<>();
+                    for (Map.Entry<BucketCollector.BucketKey, BucketCollector.Bucket> entry : collector.getBuckets().entrySet()) {
+                        partial.put(entry.getKey(), entry.getValue().getStats());
+                    }
+                    return partial;
+                });
+            }
+            Map<BucketCollector.BucketKey, PriceStats> result = new HashMap<>();
+            for (Map<BucketCollector.BucketKey, PriceStats> partial : invokeAll(tasks)) {
+                mergeBuckets(result, partial);
+            }
+            return result;
+        }
+
+        public PriceStats searchStats(Query query, Filter filter) throws IOException {
+            List<Callable<PriceStats>> tasks = new ArrayList<>();
+            for (DirectoryReader reader : readers) {
+                tasks.add(() -> {
+                    FieldStatsCollector collector = new FieldStatsCollector();
+                    new IndexSearcher(reader).search(query, filter, collector);
+                    return collector.getStats();
+                });
+            }
+            PriceStats result = new PriceStats();
+            for (PriceStats partial : invokeAll(tasks)) {
+                result.merge(partial);
+            }
+            return result;
+        }
+
+        public List<Integer> getDocumentsPerShard() {
+            List<Integer> result = new ArrayList<>();
+            for (DirectoryReader reader : readers) {
+                result.add(reader.numDocs());
+            }
+            return result;
+        }
+
+        public long getSize() throws IOException {
+            long result = 0;
+            for (Directory directory : directories) {
+                result += getDirectorySize(directory);
+            }
+            return result;
+        }
+
+        private <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException {
+            List<T> result = new ArrayList<>();
+            try {
+                for (Future<T> future : executor.invokeAll(tasks)) {
+                    result.add(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            executor.shutdown();
+            for (DirectoryReader reader : readers) {
+                reader.close();
+            }
+            for (IndexWriter writer : writers) {
+                writer.close();
+            }
+            for (Directory directory : directories) {
+                directory.close();
+            }
+        }
+    }
+
+    // per segment bucket results, keyed by the segment core and its live docs which the writer only replaces on new deletes
+    private static class AggregationCache {
+        private static final int ENTRY_OVERHEAD_BYTES = 256;
+        private static final int BUCKET_OVERHEAD_BYTES = 200;
+        private static final int FIELD_VALUE_BYTES = 96;
+
+        private final long maxBytes;
+        private final LinkedHashMap<CacheKey, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final Set<Object> watchedCores = Collections.newSetFromMap(new WeakHashMap<>());
+        private long bytes;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        public AggregationCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public synchronized Map<BucketCollector.BucketKey, PriceStats> get(AtomicReaderContext leaf, Query query, Filter filter, String[] fields) {
+            CacheEntry entry = entries.get(new CacheKey(leaf, query, filter, fields));
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return entry.buckets;
+        }
+
+        public synchronized void put(AtomicReaderContext leaf, Query query, Filter filter, String[] fields, Map<BucketCollector.BucketKey, PriceStats> buckets) {
+            CacheEntry entry = new CacheEntry(buckets, estimateBytes(buckets.size(), fields.length));
+            if (entry.bytes > maxBytes) {
+                return;
+            }
+            CacheKey key = new CacheKey(leaf, query, filter, fields);
+            CacheEntry previous = entries.put(key, entry);
+            if (previous != null) {
+                bytes -= previous.bytes;
+            }
+            bytes += entry.bytes;
+            watchCore(leaf.reader());
+            Iterator<CacheEntry> eldest = entries.values().iterator();
+            while (bytes > maxBytes) {
+                bytes -= eldest.next().bytes;
+                eldest.remove();
+                evictions++;
+            }
+        }
+
+        private void watchCore(AtomicReader reader) {
+            Object coreKey = reader.getCoreCacheKey();
+            if (watchedCores.add(coreKey)) {
+                if (reader instanceof SegmentReader) {
+                    // NRT reopens create new readers for segments with deletions, but they share the core
+                    ((SegmentReader) reader).addCoreClosedListener(this::evictCore);
+                } else {
+                    reader.addReaderClosedListener((closed) -> evictCore(coreKey));
+                }
+            }
+        }
+
+        private synchronized void evictCore(Object coreKey) {
+            watchedCores.remove(coreKey);
+            Iterator<Map.Entry<CacheKey, CacheEntry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<CacheKey, CacheEntry> entry = iterator.next();
+                if (entry.getKey().coreKey == coreKey) {
+                    bytes -= entry.getValue().bytes;
+                    iterator.remove();
+                }
+            }
+        }
+
+        private static long estimateBytes(int buckets, int fields) {
+            return ENTRY_OVERHEAD_BYTES + buckets * (BUCKET_OVERHEAD_BYTES + fields * FIELD_VALUE_BYTES);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "{entries=" + entries.size() + ", bytes=" + bytes + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + '}';
+        }
+
+        private static class CacheKey {
+            private final Object coreKey;
+            private final Bits liveDocs;
+            private final Query query;
+            private final Filter filter;
+            private final List<String> fields;
+
+            public CacheKey(AtomicReaderContext leaf, Query query, Filter filter, String[] fields) {
+                this.coreKey = leaf.reader().getCoreCacheKey();
+                this.liveDocs = leaf.reader().getLiveDocs();
+                this.query = query;
+                this.filter = filter;
+                this.fields = Arrays.asList(fields.clone());
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (this == o) return true;
+                if (o == null || getClass() != o.getClass()) return false;
+
+                CacheKey cacheKey = (CacheKey) o;
+
+                return coreKey == cacheKey.coreKey
+                        && liveDocs == cacheKey.liveDocs
+                        && query.equals(cacheKey.query)
+                        && Objects.equals(filter, cacheKey.filter)
+                        && fields.equals(cacheKey.fields);
+            }
+
+            @Override
+            public int hashCode() {
+                return Objects.hash(System.identityHashCode(coreKey), System.identityHashCode(liveDocs), query, filter, fields);
+            }
+        }
+
+        private static class CacheEntry {
+            private final Map<BucketCollector.BucketKey, PriceStats> buckets;
+            private final long bytes;
+
+            public CacheEntry(Map<BucketCollector.BucketKey, PriceStats> buckets, long bytes) {
+                this.buckets = buckets;
+                this.bytes = bytes;
+            }
+        }
+    }
+
+    // buffers the matching docIDs of a segment and reduces their prices a block at a time
+    private static class PriceBlock {
+        private final int[] docs;
+        private final long[] values;
+        private final PriceStats stats = new PriceStats();
+        private int length;
+
+        public PriceBlock(int size) {
+            docs = new int[size];
+            values = new long[size];
+        }
+
+        public void add(int doc, NumericDocValues prices) {
+            docs[length++] = doc;
+            if (length == docs.length) {
+                flush(prices);
+            }
+        }
+
+        public void flush(NumericDocValues prices) {
+            for (int i = 0; i < length; i++) {
+                values[i] = prices.get(docs[i]);
+            }
+            stats.add(values, length);
+            length = 0;
+        }
+    }
+
     private static class FieldStatsCollector extends Collector {
-        private AtomicReaderContext context;
-        private int sales;
-        private double sum;
+        private final PriceBlock block = new PriceBlock(BLOCK_SIZE);
+        private NumericDocValues prices;
 
         @Override
         public void setScorer(Scorer scorer) throws IOException {
@@ -782,15 +2961,21 @@ public class Main {
 
         @Override
         public void collect(int doc) throws IOException {
-            StoredDocument document = context.reader().document(doc);
-            StorableField price1 = document.getField("price");
-            double v = price1.numericValue().doubleValue();
-            sales++;
-            sum += v;
+            block.add(doc, prices);
         }
 
-        public void setNextReader(AtomicReaderContext context) {
-            this.context = context;
+        public void setNextReader(AtomicReaderContext context) throws IOException {
+            if (prices != null) {
+                block.flush(prices);
+            }
+            prices = getPrices(context);
+        }
+
+        public PriceStats getStats() {
+            if (prices != null) {
+                block.flush(prices);
+            }
+            return block.stats;
         }
 
         @Override
@@ -801,7 +2986,14 @@ public class Main {
 
     private static class BucketCollector extends Collector {
         private final String[] fields;
+        // one block for all buckets, so the prices are read in one loop and buckets stay two scalars each
+        private final int[] docs = new int[BLOCK_SIZE];
+        private final int[] ordinals = new int[BLOCK_SIZE];
+        private final long[] values = new long[BLOCK_SIZE];
+        private final List<Bucket> bucketsByOrdinal = new ArrayList<>();
+        private int length;
         private AtomicReaderContext context;
+        private NumericDocValues prices;
         private Map<BucketKey, Bucket> buckets = new HashMap<>();
 
         public BucketCollector(String... fields) {
@@ -815,24 +3007,54 @@ public class Main {
 
         @Override
         public void collect(int doc) throws IOException {
-            StoredDocument document = context.reader().document(doc);
-            BucketKey key = getKey(document);
-            if (!buckets.containsKey(key)) {
-                buckets.put(key, new Bucket());
+            BucketKey key = getKey(doc);
+            Bucket bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(bucketsByOrdinal.size());
+                buckets.put(key, bucket);
+                bucketsByOrdinal.add(bucket);
+            }
+            docs[length] = doc;
+            ordinals[length] = bucket.ordinal;
+            length++;
+            if (length == BLOCK_SIZE) {
+                flush();
             }
-            buckets.get(key).add(document);
         }
 
-        private BucketKey getKey(StoredDocument document) {
+        private BucketKey getKey(int doc) throws IOException {
             Map<String, String> values = new HashMap<>();
-            for (String field : fields) {
-                values.put(field, document.get(field));
+            if (fields.length > 0) {
+                // only load the grouping fields, the price comes from the doc values
+                DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(fields);
+                context.reader().document(doc, visitor);
+                StoredDocument document = visitor.getDocument();
+                for (String field : fields) {
+                    values.put(field, document.get(field));
+                }
             }
             return new BucketKey(values);
         }
 
-        public void setNextReader(AtomicReaderContext context) {
+        public void setNextReader(AtomicReaderContext context) throws IOException {
+            flush();
             this.context = context;
+            this.prices = getPrices(context);
+        }
+
+        private void flush() {
+            for (int i = 0; i < length; i++) {
+                values[i] = prices.get(docs[i]);
+            }
+            for (int i = 0; i < length; i++) {
+                bucketsByOrdinal.get(ordinals[i]).stats.add(values[i]);
+            }
+            length = 0;
+        }
+
+        public Map<BucketKey, Bucket> getBuckets() {
+            flush();
+            return buckets;
         }
 
         @Override
@@ -865,14 +3087,15 @@ public class Main {
         }
 
         private class Bucket {
-            int sales;
-            double sum;
-
-            public void add(StoredDocument document) {
-                StorableField priceField = document.getField("price");
-                double price = priceField.numericValue().doubleValue();
-                sales++;
-                sum += price;
+            private final int ordinal;
+            private final PriceStats stats = new PriceStats();
+
+            public Bucket(int ordinal) {
+                this.ordinal = ordinal;
+            }
+
+            public PriceStats getStats() {
+                return stats;
             }
         }
     }